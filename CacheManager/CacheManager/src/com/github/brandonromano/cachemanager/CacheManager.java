@@ -8,26 +8,79 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.jasypt.util.text.BasicTextEncryptor;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.v4.util.LruCache;
 import android.util.Log;
 
 public class CacheManager {
 	
 	private static CacheManager mInstance;
+	private static Method mGetAllocationByteCount;
 	private Context mContext;
 	private String mCacheDir;
+	private LruCache<String, Bitmap> mBitmapMemoryCache;
+	private Map<String, Set<String>> mDecodedBitmapKeys;
+	private Map<String, BitmapDecode> mBitmapDecodes;
+	private Set<SoftReference<Bitmap>> mReusableBitmaps;
+	private Map<Bitmap, BitmapReference> mBitmapReferences;
+	private final Object mBitmapLock = new Object();
+	
+	static {
+		// Bitmap.getAllocationByteCount() is only available from KitKat, and this project builds against an older SDK
+		if(Build.VERSION.SDK_INT >= 19){
+			try {
+				mGetAllocationByteCount = Bitmap.class.getMethod("getAllocationByteCount");
+			} catch (NoSuchMethodException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 	
 	private CacheManager(Context applicationContext){
 		mContext = applicationContext;
 		mCacheDir = mContext.getCacheDir().toString()+ "/";
+		
+		// Bitmap reuse through BitmapFactory.Options.inBitmap is only available from Honeycomb
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB){
+			mReusableBitmaps = new HashSet<SoftReference<Bitmap>>();
+			mBitmapReferences = new WeakHashMap<Bitmap, BitmapReference>();
+		}
+		
+		mDecodedBitmapKeys = new HashMap<String, Set<String>>();
+		mBitmapDecodes = new HashMap<String, BitmapDecode>();
+		
+		int bitmapCacheSize = (int) (Runtime.getRuntime().maxMemory() / Constants.bitmapMemoryCacheDivisor);
+		mBitmapMemoryCache = new LruCache<String, Bitmap>(bitmapCacheSize){
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				return getBitmapBytes(bitmap);
+			}
+			
+			@Override
+			protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+				synchronized(mBitmapLock){
+					onBitmapRemoved(key, oldValue, newValue);
+				}
+			}
+		};
 		Log.d(Constants.Tag, "[CacheManager]: Initializing new instance");
 	}
 	
@@ -56,6 +109,7 @@ public class CacheManager {
 	public void write(String toWrite, String fileName) throws CacheTransactionException
 	{
 		File file = new File(mCacheDir, fileName);
+		evictDecodedBitmaps(fileName);
 		
 		BufferedWriter out = null;
 		try {
@@ -76,6 +130,7 @@ public class CacheManager {
 					e.printStackTrace();
 				}
 			}
+			evictDecodedBitmaps(fileName);
 		}
 	}
 	
@@ -263,6 +318,7 @@ public class CacheManager {
 	public void write(Bitmap bitmap, CompressFormat format, int quality, String fileName) throws CacheTransactionException {     
 	    
 		File file = new File(mCacheDir, fileName);
+		evictDecodedBitmaps(fileName);
 		
 		FileOutputStream out = null;
 	    try {      
@@ -281,6 +337,7 @@ public class CacheManager {
 	    			e.printStackTrace();
 	    		}
 	    	}
+	    	evictDecodedBitmaps(fileName);
 	    }
 	}
 	
@@ -303,6 +360,412 @@ public class CacheManager {
 		}
 	}
 	
+	
+	/**
+	 * Reads a bitmap from the specified file, decoded down to roughly the requested size, and 
+	 * returns the bitmap.  Only the image bounds are read at first, so the image is then 
+	 * decoded at the largest power of two sample size that still keeps it at least as large 
+	 * as the target dimensions.  This avoids decoding large images at full resolution when 
+	 * only a thumbnail is needed.
+	 * 
+	 * Decoded bitmaps are kept in a memory cache (limited to a fraction of the application's 
+	 * heap) keyed by the file name and target size, so subsequent reads of the same file at the 
+	 * same size will not touch the file system.  Writing to or deleting the file will remove its
+	 * decoded bitmaps from the memory cache.
+	 * 
+	 * The returned bitmap is shared with every other caller reading the same file at the same 
+	 * size, so it must not be recycled or drawn on.  Use readBitmap(fileName) for a bitmap of 
+	 * your own.  Pass the bitmap to releaseBitmap once it is no longer displayed, so its memory 
+	 * can be reused by later decodes.
+	 * 
+	 * @param fileName The File name that will be read from.
+	 * @param targetWidth The width the bitmap will be displayed at, in pixels.
+	 * @param targetHeight The height the bitmap will be displayed at, in pixels.
+	 * @return Returns the bitmap in the case of a successful read.
+	 * @throws CacheTransactionException Throws the exception if reading failed.  
+	 * Will not throw an exception in the result of a successful read.
+	 */
+	public Bitmap readBitmap(String fileName, int targetWidth, int targetHeight) throws CacheTransactionException {
+		String key = getBitmapMemoryCacheKey(fileName, targetWidth, targetHeight);
+		Bitmap bitmap = getBitmapFromMemoryCache(key);
+		if(bitmap != null){
+			Log.d(Constants.Tag, "[CacheManager]: Reading from memory for " + mCacheDir + fileName);
+			return bitmap;
+		}
+		
+		File file = new File(mCacheDir, fileName);
+		int generation = beginBitmapDecode(fileName);
+		try{
+			// Read the bounds only, so we know how far the image can be sampled down
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeFile(file.toString(), options);
+			if(options.outWidth <= 0 || options.outHeight <= 0){
+				Log.d(Constants.Tag, "[CacheManager]: Unsuccessful read from " + mCacheDir + fileName);
+				throw new CacheTransactionException(Constants.readExceptionAlert);
+			}
+			
+			options.inSampleSize = calculateInSampleSize(options, targetWidth, targetHeight);
+			options.inJustDecodeBounds = false;
+			
+			// Bitmaps too large for the memory cache go straight to the caller, and are never reused
+			boolean cacheable = estimateBitmapBytes(options) <= mBitmapMemoryCache.maxSize();
+			boolean reusable = cacheable && mReusableBitmaps != null;
+			
+			try{
+				if(reusable){
+					bitmap = decodeReusableBitmap(file, options);
+				}else{
+					bitmap = BitmapFactory.decodeFile(file.toString(), options);
+				}
+			}catch(IllegalArgumentException e){
+				Log.d(Constants.Tag, "[CacheManager]: Unsuccessful read from " + mCacheDir + fileName);
+				e.printStackTrace();
+				throw new CacheTransactionException(Constants.readExceptionAlert);
+			}
+			
+			if(bitmap != null){
+				Log.d(Constants.Tag, "[CacheManager]: Reading from " + mCacheDir + fileName + 
+						" with a sample size of " + options.inSampleSize);
+				// Only trips if the decoder picked a wider config than the ARGB_8888 estimate, 
+				// in which case the bitmap is handed out without being cached or ever pooled
+				if(cacheable && getBitmapBytes(bitmap) <= mBitmapMemoryCache.maxSize()){
+					addBitmapToMemoryCache(fileName, key, bitmap, reusable, generation);
+				}
+				return bitmap;
+			}else{ // BitmapFactory.decodeFile returns null if it can't decode a bitmap.
+				Log.d(Constants.Tag, "[CacheManager]: Unsuccessful read from " + mCacheDir + fileName);
+				throw new CacheTransactionException(Constants.readExceptionAlert); 
+			}
+		}finally{
+			endBitmapDecode(fileName);
+		}
+	}
+	
+	
+	/**
+	 * Hands a bitmap returned by readBitmap(fileName, targetWidth, targetHeight) back to the 
+	 * CacheManager.  Once every caller that read the bitmap has released it, and it has left 
+	 * the memory cache, its memory may be reused by later decodes, so the bitmap must not be 
+	 * drawn after it is released.  Bitmaps that are never released are left to the garbage collector.
+	 * 
+	 * @param bitmap The bitmap that is no longer displayed.
+	 */
+	public void releaseBitmap(Bitmap bitmap){
+		if(bitmap == null || mBitmapReferences == null){
+			return;
+		}
+		synchronized(mBitmapLock){
+			BitmapReference reference = mBitmapReferences.get(bitmap);
+			if(reference == null || reference.handedOut == 0){
+				return;
+			}
+			reference.handedOut--;
+			poolIfUnused(bitmap, reference);
+		}
+	}
+	
+	
+	private Bitmap getBitmapFromMemoryCache(String key){
+		synchronized(mBitmapLock){
+			Bitmap bitmap = mBitmapMemoryCache.get(key);
+			if(bitmap == null){
+				return null;
+			}
+			if(bitmap.isRecycled()){ // A caller recycled the shared bitmap, so it can't be served again
+				mBitmapMemoryCache.remove(key);
+				return null;
+			}
+			if(mBitmapReferences != null){
+				BitmapReference reference = mBitmapReferences.get(bitmap);
+				if(reference != null){
+					reference.handedOut++;
+				}
+			}
+			return bitmap;
+		}
+	}
+	
+	
+	/**
+	 * Registers a decode of the given file and returns the file's current generation, which
+	 * addBitmapToMemoryCache compares against so a decode of an overwritten file isn't cached.
+	 */
+	private int beginBitmapDecode(String fileName){
+		synchronized(mBitmapLock){
+			BitmapDecode decode = mBitmapDecodes.get(fileName);
+			if(decode == null){
+				decode = new BitmapDecode();
+				mBitmapDecodes.put(fileName, decode);
+			}
+			decode.readers++;
+			return decode.generation;
+		}
+	}
+	
+	
+	private void endBitmapDecode(String fileName){
+		synchronized(mBitmapLock){
+			BitmapDecode decode = mBitmapDecodes.get(fileName);
+			if(decode != null && --decode.readers == 0){
+				mBitmapDecodes.remove(fileName);
+			}
+		}
+	}
+	
+	
+	private void addBitmapToMemoryCache(String fileName, String key, Bitmap bitmap, boolean reusable, int generation){
+		synchronized(mBitmapLock){
+			BitmapDecode decode = mBitmapDecodes.get(fileName);
+			if(decode == null || decode.generation != generation){ // The file was written to or deleted while decoding
+				return;
+			}
+			
+			if(reusable){
+				BitmapReference reference = new BitmapReference();
+				reference.handedOut = 1;
+				reference.cached = true;
+				mBitmapReferences.put(bitmap, reference);
+			}
+			
+			Set<String> keys = mDecodedBitmapKeys.get(fileName);
+			if(keys == null){
+				keys = new HashSet<String>();
+				mDecodedBitmapKeys.put(fileName, keys);
+			}
+			keys.add(key);
+			mBitmapMemoryCache.put(key, bitmap);
+		}
+	}
+	
+	
+	/**
+	 * Called with mBitmapLock held whenever a bitmap leaves the memory cache.
+	 */
+	private void onBitmapRemoved(String key, Bitmap oldValue, Bitmap newValue){
+		if(newValue == null){
+			removeDecodedBitmapKey(key);
+		}
+		if(mBitmapReferences == null){
+			return;
+		}
+		BitmapReference reference = mBitmapReferences.get(oldValue);
+		if(reference == null){
+			return;
+		}
+		if(newValue != null){ // Replaced by a concurrent decode of the same file, so it is never pooled
+			mBitmapReferences.remove(oldValue);
+			return;
+		}
+		reference.cached = false;
+		poolIfUnused(oldValue, reference);
+	}
+	
+	
+	/**
+	 * Moves the bitmap into the reuse pool once it is out of the memory cache 
+	 * and every caller has released it.  Must be called with mBitmapLock held.
+	 */
+	private void poolIfUnused(Bitmap bitmap, BitmapReference reference){
+		if(reference.handedOut > 0 || reference.cached){
+			return;
+		}
+		mBitmapReferences.remove(bitmap);
+		if(bitmap.isMutable() && !bitmap.isRecycled()){
+			mReusableBitmaps.add(new SoftReference<Bitmap>(bitmap));
+		}
+	}
+	
+	
+	/**
+	 * Finds the largest power of two sample size that keeps both dimensions of the
+	 * decoded image at least as large as the requested dimensions.
+	 */
+	private static int calculateInSampleSize(BitmapFactory.Options options, int targetWidth, int targetHeight){
+		int inSampleSize = 1;
+		if(targetWidth <= 0 || targetHeight <= 0){
+			return inSampleSize;
+		}
+		
+		int halfWidth = options.outWidth / 2;
+		int halfHeight = options.outHeight / 2;
+		while((halfWidth / inSampleSize) >= targetWidth && (halfHeight / inSampleSize) >= targetHeight){
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
+	}
+	
+	
+	/**
+	 * Decodes the file as a mutable bitmap, into a bitmap from the reuse pool if one 
+	 * can hold the image.
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private Bitmap decodeReusableBitmap(File file, BitmapFactory.Options options){
+		// inBitmap only works with mutable bitmaps
+		options.inMutable = true;
+		options.inBitmap = getBitmapFromReusableSet(options);
+		
+		try{
+			return BitmapFactory.decodeFile(file.toString(), options);
+		}catch(IllegalArgumentException e){
+			if(options.inBitmap == null){
+				throw e;
+			}
+			// The reusable bitmap could not be used for this image, so decode without it.
+			// It may have been partly written to, so it is dropped rather than put back in the pool.
+			options.inBitmap = null;
+			return BitmapFactory.decodeFile(file.toString(), options);
+		}
+	}
+	
+	
+	private Bitmap getBitmapFromReusableSet(BitmapFactory.Options options){
+		int maxBytes = mBitmapMemoryCache.maxSize();
+		synchronized(mBitmapLock){
+			Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
+			while(iterator.hasNext()){
+				Bitmap candidate = iterator.next().get();
+				if(candidate == null || !candidate.isMutable() || candidate.isRecycled()){
+					iterator.remove();
+				}else if(canUseForInBitmap(candidate, options) && getBitmapBytes(candidate) <= maxBytes){
+					iterator.remove();
+					return candidate;
+				}
+			}
+		}
+		return null;
+	}
+	
+	
+	private static boolean canUseForInBitmap(Bitmap candidate, BitmapFactory.Options options){
+		if(Build.VERSION.SDK_INT >= 19){ // KitKat
+			// The new bitmap only needs to fit into the memory of the old one, but a much larger
+			// candidate would keep its whole allocation alive for a small image
+			long byteCount = (long) getSampledSize(options.outWidth, options.inSampleSize) 
+					* getSampledSize(options.outHeight, options.inSampleSize) 
+					* getBytesPerPixel(candidate.getConfig());
+			int allocation = getBitmapBytes(candidate);
+			return byteCount <= allocation && allocation <= byteCount * Constants.bitmapReuseMaxSizeRatio;
+		}
+		
+		// Before KitKat the sizes must match exactly, and inSampleSize must be 1
+		return candidate.getWidth() == options.outWidth 
+				&& candidate.getHeight() == options.outHeight
+				&& options.inSampleSize == 1;
+	}
+	
+	
+	private static int getBytesPerPixel(Bitmap.Config config){
+		if(config == Bitmap.Config.ARGB_8888){
+			return 4;
+		}else if(config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444){
+			return 2;
+		}else if(config == Bitmap.Config.ALPHA_8){
+			return 1;
+		}
+		return 4;
+	}
+	
+	
+	/**
+	 * Returns the memory held by the bitmap.  From KitKat a bitmap decoded into a reused 
+	 * bitmap keeps the reused bitmap's allocation, which may be larger than its pixels.
+	 */
+	private static int getBitmapBytes(Bitmap bitmap){
+		if(mGetAllocationByteCount != null){
+			try {
+				return (Integer) mGetAllocationByteCount.invoke(bitmap);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		// Bitmap.getByteCount() is not available until Honeycomb MR1
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+	
+	
+	/**
+	 * Estimates the size of the decoded bitmap, assuming the default ARGB_8888 config.
+	 */
+	private static long estimateBitmapBytes(BitmapFactory.Options options){
+		long width = getSampledSize(options.outWidth, options.inSampleSize);
+		long height = getSampledSize(options.outHeight, options.inSampleSize);
+		return width * height * getBytesPerPixel(Bitmap.Config.ARGB_8888);
+	}
+	
+	
+	/**
+	 * Decoders round sampled dimensions up, so this does too.
+	 */
+	private static int getSampledSize(int size, int inSampleSize){
+		return (size + inSampleSize - 1) / inSampleSize;
+	}
+	
+	
+	private static String getBitmapMemoryCacheKey(String fileName, int targetWidth, int targetHeight){
+		return fileName + Constants.bitmapMemoryCacheKeySeparator + targetWidth + "x" + targetHeight;
+	}
+	
+	
+	/**
+	 * Must be called with mBitmapLock held.
+	 */
+	private void removeDecodedBitmapKey(String key){
+		String fileName = key.substring(0, key.lastIndexOf(Constants.bitmapMemoryCacheKeySeparator));
+		Set<String> keys = mDecodedBitmapKeys.get(fileName);
+		if(keys != null){
+			keys.remove(key);
+			if(keys.isEmpty()){
+				mDecodedBitmapKeys.remove(fileName);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Removes every decoded size of the given file from the Bitmap memory cache, and stops
+	 * decodes of the file that are already running from caching their result.  Writes call 
+	 * this both before opening the file and after closing it, so a partial or failed write 
+	 * is never served from memory.
+	 */
+	private void evictDecodedBitmaps(String fileName){
+		synchronized(mBitmapLock){
+			BitmapDecode decode = mBitmapDecodes.get(fileName);
+			if(decode != null){
+				decode.generation++;
+			}
+			
+			Set<String> keys = mDecodedBitmapKeys.remove(fileName);
+			if(keys == null){
+				return;
+			}
+			for(String key : keys){
+				mBitmapMemoryCache.remove(key);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Tracks how many callers currently hold a reusable bitmap, and whether
+	 * it is still in the memory cache.
+	 */
+	private static class BitmapReference {
+		int handedOut;
+		boolean cached;
+	}
+	
+	
+	/**
+	 * Tracks the decodes of a file that are running, and how many times the 
+	 * file has been written to or deleted since the first of them started.
+	 */
+	private static class BitmapDecode {
+		int readers;
+		int generation;
+	}
+	
 	//=======================================
 	//========== Binary Read/Write ==========
 	//=======================================
@@ -318,6 +781,7 @@ public class CacheManager {
 	 */
 	public void write(byte[] toWrite, String fileName) throws CacheTransactionException{
 		File file = new File(mCacheDir, fileName);
+		evictDecodedBitmaps(fileName);
 		
 		FileOutputStream out = null;
 		try {
@@ -337,6 +801,7 @@ public class CacheManager {
 					e.printStackTrace();
 				}
 			}
+			evictDecodedBitmaps(fileName);
 		}
 	}
 	
@@ -386,6 +851,22 @@ public class CacheManager {
 		Log.d(Constants.Tag, "[CacheManager]: Deleting the file " + mCacheDir + fileName);
 		File toDelete = new File(mCacheDir, fileName);
 		toDelete.delete();
+		evictDecodedBitmaps(fileName);
+	}
+	
+	
+	/**
+	 * Clears all of the decoded Bitmaps held in memory by readBitmap(fileName, targetWidth, targetHeight).
+	 * Files in the cache directory are not affected.
+	 */
+	public void clearBitmapMemoryCache(){
+		Log.d(Constants.Tag, "[CacheManager]: Clearing the Bitmap memory cache");
+		synchronized(mBitmapLock){
+			mBitmapMemoryCache.evictAll();
+			if(mReusableBitmaps != null){
+				mReusableBitmaps.clear();
+			}
+		}
 	}
 	
 }
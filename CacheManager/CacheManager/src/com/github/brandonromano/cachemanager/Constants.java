@@ -4,4 +4,7 @@ public class Constants {
 	public static String writeExceptionAlert = "CacheManager failed to write to cache";
 	public static String readExceptionAlert = "CacheManager failed to read from cache";
 	public static String Tag = "CacheManager";
+	public static int bitmapMemoryCacheDivisor = 8;
+	public static String bitmapMemoryCacheKeySeparator = ":";
+	public static int bitmapReuseMaxSizeRatio = 2;
 }
\ No newline at end of file